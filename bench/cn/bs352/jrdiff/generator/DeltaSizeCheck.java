@@ -0,0 +1,195 @@
+package cn.bs352.jrdiff.generator;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks delta shape on inputs where the expected result is known, exits with status 1 on a failed check
+ * <p/>
+ * Identical files with long runs of equal blocks (zero-filled, sparse), and identical files shorter than a block, must
+ * map onto a single reference, both through signatures and when generated from local files. Deltas generated from
+ * local files must never be larger than deltas generated through signatures.
+ *
+ * @author bo.shen
+ */
+public class DeltaSizeCheck {
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        byte[] zeros = new byte[8 * 1024 * 1024];
+        checkSingleReference("zeros", zeros);
+
+        byte[] sparse = new byte[8 * 1024 * 1024];
+        Random random = new Random(1);
+        for (int i = 0; i < 64; i++) {
+            sparse[random.nextInt(sparse.length)] = (byte) (1 + random.nextInt(255));
+        }
+        checkSingleReference("sparse", sparse);
+
+        for (int length : new int[]{100, 300, 511, 512, 513, 2047, 2049}) {
+            byte[] small = new byte[length];
+            random.nextBytes(small);
+            checkSingleReference("random " + length, small);
+        }
+
+        checkLocalNotLarger(new Random(2));
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void checkSingleReference(String name, byte[] data) throws Exception {
+        RDiffGenerator generator = new RDiffGenerator();
+
+        ByteArrayOutputStream sigDelta = new ByteArrayOutputStream();
+        generator.generateDelta(new ByteArrayInputStream(data), new ByteArrayInputStream(data), sigDelta);
+        check(name + " signature", sigDelta.toByteArray(), 1);
+
+        File file = writeTemp(data);
+        try {
+            ByteArrayOutputStream localDelta = new ByteArrayOutputStream();
+            generator.generateDelta(file, file, localDelta);
+            check(name + " local", localDelta.toByteArray(), 1);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Small files with a few random edits, appends or truncations, local delta size against signature delta size
+     */
+    private static void checkLocalNotLarger(Random random) throws Exception {
+        RDiffGenerator generator = new RDiffGenerator();
+        int cases = 0;
+        int larger = 0;
+        long localBytes = 0;
+        long sigBytes = 0;
+        for (int i = 0; i < 500; i++) {
+            byte[] base = new byte[random.nextInt(6000)];
+            random.nextBytes(base);
+            byte[] newFile = mutate(base, random);
+
+            ByteArrayOutputStream sigDelta = new ByteArrayOutputStream();
+            generator.generateDelta(new ByteArrayInputStream(base), new ByteArrayInputStream(newFile), sigDelta);
+
+            File baseFile = writeTemp(base);
+            File changedFile = writeTemp(newFile);
+            try {
+                ByteArrayOutputStream localDelta = new ByteArrayOutputStream();
+                generator.generateDelta(baseFile, changedFile, localDelta);
+                if (localDelta.size() > sigDelta.size()) {
+                    larger++;
+                    System.out.printf("local delta larger: base=%d new=%d local=%d signature=%d%n",
+                            base.length, newFile.length, localDelta.size(), sigDelta.size());
+                }
+                localBytes += localDelta.size();
+                sigBytes += sigDelta.size();
+                cases++;
+            }
+            finally {
+                baseFile.delete();
+                changedFile.delete();
+            }
+        }
+        if (larger > 0) {
+            failures++;
+        }
+        System.out.printf("%-20s %s cases=%d larger=%d localBytes=%d signatureBytes=%d%n",
+                "local <= signature", larger == 0 ? "OK  " : "FAIL", cases, larger, localBytes, sigBytes);
+    }
+
+    private static byte[] mutate(byte[] base, Random random) {
+        byte[] mutated = base.clone();
+        switch (random.nextInt(4)) {
+            case 0:
+                for (int i = 0; i < 3 && mutated.length > 0; i++) {
+                    mutated[random.nextInt(mutated.length)] ^= 0x5A;
+                }
+                return mutated;
+            case 1:
+                mutated = Arrays.copyOf(mutated, mutated.length + random.nextInt(100));
+                return mutated;
+            case 2:
+                return Arrays.copyOf(mutated, random.nextInt(mutated.length + 1));
+            default:
+                return mutated;
+        }
+    }
+
+    private static void check(String name, byte[] delta, int expectedReferences) throws IOException {
+        int[] counts = countBlocks(delta);
+        boolean ok = counts[0] == expectedReferences && counts[1] == 0;
+        if (!ok) {
+            failures++;
+        }
+        System.out.printf("%-20s %s references=%d dataBytes=%d deltaBytes=%d%n",
+                name, ok ? "OK  " : "FAIL", counts[0], counts[1], delta.length);
+    }
+
+    /**
+     * @return {reference blocks, data bytes}
+     */
+    static int[] countBlocks(byte[] delta) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        if (in.readInt() != RDiffGenerator.DELTA_MAGIC) {
+            throw new IOException("Invalid delta header.");
+        }
+        int references = 0;
+        int dataBytes = 0;
+        int flag;
+        while ((flag = in.read()) != -1) {
+            int lengthBytes = flag & 0x0F;
+            switch (flag & 0xF0) {
+                case 0x40:
+                    int length = readLength(in, lengthBytes);
+                    in.skipBytes(length);
+                    dataBytes += length;
+                    break;
+                case 0x50:
+                    in.readInt();
+                    readLength(in, lengthBytes);
+                    references++;
+                    break;
+                case 0x60:
+                    in.readLong();
+                    readLength(in, lengthBytes);
+                    references++;
+                    break;
+                default:
+                    throw new IOException("Unknown block format");
+            }
+        }
+        return new int[]{references, dataBytes};
+    }
+
+    private static int readLength(DataInputStream in, int lengthBytes) throws IOException {
+        switch (lengthBytes) {
+            case 1:
+                return in.readUnsignedByte();
+            case 2:
+                return in.readUnsignedShort();
+            case 4:
+                return in.readInt();
+            default:
+                throw new IOException("Invalid length size: " + lengthBytes);
+        }
+    }
+
+    static File writeTemp(byte[] data) throws IOException {
+        File file = File.createTempFile("delta", ".bin");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,232 @@
+package cn.bs352.jrdiff.generator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of RDiffEngine's channel based methods, platform threads against virtual threads
+ * <p/>
+ * Three operations are measured: delta generation against a cached signature, and patching with the base file read
+ * through a FileChannel or an AsynchronousFileChannel. Delta, signature, new file and patch output go through
+ * channels that simulate network latency (a sleep per chunk). Operations are submitted all at once and each runs
+ * on its own thread, platform or virtual, so both modes see the same concurrency. Throughput is operations
+ * completed per second.
+ * <p/>
+ * Every operation in flight holds its own generator or patcher (about 100KB), and platform threads their stacks,
+ * so 10k concurrent operations need a heap of around 2GB.
+ * <p/>
+ * Requires JDK 21. Run with -Djdk.tracePinnedThreads=short to check that no virtual thread is pinned.
+ * <p/>
+ * Usage: VirtualThreadLoadTest [fixed platform pool size, adds a pooled row when given]
+ *
+ * @author bo.shen
+ */
+public class VirtualThreadLoadTest {
+
+    private static final int[] CONCURRENT_OPERATIONS = {1000, 10000};
+
+    private static final int FILE_LENGTH = 16 * 1024;
+    private static final int CHUNK_LENGTH = 4 * 1024;
+    private static final long CHUNK_LATENCY_MILLIS = 100;
+
+    private enum Operation {
+        DELTA, PATCH_FILE_CHANNEL, PATCH_ASYNC_CHANNEL
+    }
+
+    private final RDiffEngine engine;
+    private final byte[] sig;
+    private final byte[] newFile;
+    private final byte[] delta;
+    private final FileChannel baseChannel;
+    private final AsynchronousFileChannel asyncBaseChannel;
+
+    private VirtualThreadLoadTest(RDiffEngine engine, byte[] sig, byte[] newFile, byte[] delta,
+                                  FileChannel baseChannel, AsynchronousFileChannel asyncBaseChannel) {
+        this.engine = engine;
+        this.sig = sig;
+        this.newFile = newFile;
+        this.delta = delta;
+        this.baseChannel = baseChannel;
+        this.asyncBaseChannel = asyncBaseChannel;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int poolSize = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+
+        Random random = new Random(5);
+        byte[] base = new byte[FILE_LENGTH];
+        random.nextBytes(base);
+        byte[] newFile = base.clone();
+        for (int i = 0; i < 2; i++) {
+            newFile[random.nextInt(newFile.length)] = 0x7;
+        }
+
+        RDiffEngine engine = new RDiffEngine();
+        ByteArrayOutputStream sig = new ByteArrayOutputStream();
+        engine.generateSignature(Channels.newChannel(new ByteArrayInputStream(base)), Channels.newChannel(sig));
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        engine.generateDeltaFromSig(new ByteArrayInputStream(sig.toByteArray()), new ByteArrayInputStream(newFile), delta);
+
+        File baseFile = File.createTempFile("base", ".bin");
+        baseFile.deleteOnExit();
+        OutputStream out = new FileOutputStream(baseFile);
+        try {
+            out.write(base);
+        }
+        finally {
+            out.close();
+        }
+
+        FileChannel baseChannel = FileChannel.open(baseFile.toPath(), StandardOpenOption.READ);
+        AsynchronousFileChannel asyncBaseChannel = AsynchronousFileChannel.open(baseFile.toPath(), StandardOpenOption.READ);
+        try {
+            VirtualThreadLoadTest test = new VirtualThreadLoadTest(engine, sig.toByteArray(), newFile, delta.toByteArray(),
+                    baseChannel, asyncBaseChannel);
+            test.runAll(poolSize);
+        }
+        finally {
+            baseChannel.close();
+            asyncBaseChannel.close();
+        }
+    }
+
+    private void runAll(int poolSize) throws Exception {
+        // Warm up, also fills the signature cache
+        for (Operation operation : Operation.values()) {
+            run(operation, Executors.newCachedThreadPool(), 1000);
+            run(operation, Executors.newVirtualThreadPerTaskExecutor(), 1000);
+        }
+
+        for (Operation operation : Operation.values()) {
+            for (int operations : CONCURRENT_OPERATIONS) {
+                double platform = run(operation, Executors.newCachedThreadPool(), operations);
+                double virtual = run(operation, Executors.newVirtualThreadPerTaskExecutor(), operations);
+                System.out.printf("%-20s %6d ops  platform=%8.0f ops/s  virtual=%8.0f ops/s  virtual/platform=%.2f%n",
+                        operation, operations, platform, virtual, virtual / platform);
+                if (poolSize > 0) {
+                    double pooled = run(operation, Executors.newFixedThreadPool(poolSize), operations);
+                    System.out.printf("%-20s %6d ops  platform pool(%d)=%8.0f ops/s%n", operation, operations, poolSize, pooled);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return operations per second
+     */
+    private double run(final Operation operation, ExecutorService executor, int operations) throws Exception {
+        List<Future<Long>> results = new ArrayList<Future<Long>>(operations);
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            results.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return runOnce(operation);
+                }
+            }));
+        }
+        for (Future<Long> result : results) {
+            long written = result.get();
+            if (written <= 0 || (operation != Operation.DELTA && written != newFile.length)) {
+                throw new IllegalStateException(operation + " wrote " + written + " bytes");
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        return operations / seconds;
+    }
+
+    /**
+     * @return bytes written to the output channel
+     */
+    private long runOnce(Operation operation) throws Exception {
+        SlowChannel output = new SlowChannel(null);
+        switch (operation) {
+            case DELTA:
+                engine.generateDeltaFromSig("base", new SlowChannel(sig), new SlowChannel(newFile), output);
+                break;
+            case PATCH_FILE_CHANNEL:
+                engine.apply(baseChannel, new SlowChannel(delta), output);
+                break;
+            case PATCH_ASYNC_CHANNEL:
+                engine.apply(asyncBaseChannel, new SlowChannel(delta), output);
+                break;
+        }
+        return output.written;
+    }
+
+    /**
+     * Blocking channel that sleeps before every chunk, reads from "data" or discards writes
+     */
+    private static class SlowChannel implements ReadableByteChannel, WritableByteChannel {
+
+        private final byte[] data;
+        private int position = 0;
+        private long written = 0;
+
+        SlowChannel(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (position == data.length) {
+                return -1;
+            }
+            pause();
+            int len = Math.min(Math.min(dst.remaining(), CHUNK_LENGTH), data.length - position);
+            dst.put(data, position, len);
+            position += len;
+            return len;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            pause();
+            int len = src.remaining();
+            src.position(src.limit());
+            written += len;
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private static void pause() throws IOException {
+            try {
+                Thread.sleep(CHUNK_LATENCY_MILLIS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting");
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package cn.bs352.jrdiff.generator;
+
+import cn.bs352.jrdiff.common.WeakChecksum;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+
+/**
+ * Compares weak checksum types on generated corpora
+ * <p/>
+ * For every rolled position of the new file, counts weak checksum hits against the base blocks and how many of them
+ * are real (byte equal) matches, then measures end-to-end delta throughput (signature + delta).
+ * Corpora are generated from fixed seeds so runs are repeatable.
+ * <p/>
+ * Usage: WeakChecksumBenchmark [corpus size in MB, default 8]
+ *
+ * @author bo.shen
+ */
+public class WeakChecksumBenchmark {
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 8) * 1024 * 1024;
+
+        byte[] sparse = sparseCorpus(size, 1);
+        byte[] text = textCorpus(size, 2);
+        run("sparse", sparse, mutate(sparse, 3, (byte) 0x3));
+        run("text", text, mutate(text, 4, (byte) 'x'));
+    }
+
+    private static void run(String corpus, byte[] base, byte[] newFile) throws Exception {
+        for (WeakChecksumType type : WeakChecksumType.values()) {
+            long[] hits = countHits(base, newFile, type);
+            double mbPerSecond = deltaThroughput(base, newFile, type);
+            System.out.printf("%-6s %-10s weakHits=%d strongMatches=%d falseHits=%d hitsPerMatch=%.4f delta=%.1f MB/s%n",
+                    corpus, type, hits[0], hits[1], hits[0] - hits[1], hits[0] / (double) Math.max(1, hits[1]), mbPerSecond);
+        }
+    }
+
+    /**
+     * @return {weak hits, strong matches}
+     */
+    private static long[] countHits(byte[] base, byte[] newFile, WeakChecksumType type) {
+        int blockLength = RDiffGenerator.BLOCK_LENGTH;
+        Map<Integer, List<Integer>> blocks = new HashMap<Integer, List<Integer>>();
+        WeakChecksum checksum = type.create(blockLength);
+        for (int offset = 0; offset + blockLength <= base.length; offset += blockLength) {
+            checksum.reset();
+            checksum.update(base, offset, blockLength);
+            List<Integer> offsets = blocks.get(checksum.digest());
+            if (offsets == null) {
+                offsets = new ArrayList<Integer>();
+                blocks.put(checksum.digest(), offsets);
+            }
+            offsets.add(offset);
+        }
+
+        long weakHits = 0;
+        long strongMatches = 0;
+        checksum.reset();
+        checksum.update(newFile, 0, blockLength);
+        for (int pos = 0; ; pos++) {
+            List<Integer> offsets = blocks.get(checksum.digest());
+            if (offsets != null) {
+                weakHits++;
+                for (int offset : offsets) {
+                    if (equal(base, offset, newFile, pos, blockLength)) {
+                        strongMatches++;
+                        break;
+                    }
+                }
+            }
+            if (pos + blockLength >= newFile.length) {
+                break;
+            }
+            checksum.roll(newFile[pos + blockLength]);
+        }
+        return new long[]{weakHits, strongMatches};
+    }
+
+    private static double deltaThroughput(byte[] base, byte[] newFile, WeakChecksumType type) throws Exception {
+        RDiffGenerator generator = new RDiffGenerator();
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            delta.reset();
+            generator.generateDelta(new ByteArrayInputStream(base), new ByteArrayInputStream(newFile), delta, type);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            delta.reset();
+            generator.generateDelta(new ByteArrayInputStream(base), new ByteArrayInputStream(newFile), delta, type);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9 / MEASURED_RUNS;
+        return newFile.length / 1e6 / seconds;
+    }
+
+    private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset, int len) {
+        for (int i = 0; i < len; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Mostly zero bytes with short low-entropy records scattered around, like a sparse disk image
+     */
+    private static byte[] sparseCorpus(int size, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size / 4096; i++) {
+            int pos = random.nextInt(size - 16);
+            for (int j = 0; j < 16; j++) {
+                data[pos + j] = (byte) random.nextInt(4);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Repeated CSV-like records with a small vocabulary
+     */
+    private static byte[] textCorpus(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            text.append("id=").append(random.nextInt(1000))
+                    .append(",name=user").append(random.nextInt(50))
+                    .append(",flag=").append(random.nextBoolean()).append('\n');
+        }
+        return Arrays.copyOf(text.toString().getBytes(), size);
+    }
+
+    /**
+     * Overwrites a few hundred scattered bytes
+     */
+    private static byte[] mutate(byte[] data, long seed, byte value) {
+        Random random = new Random(seed);
+        byte[] mutated = data.clone();
+        for (int i = 0; i < 500; i++) {
+            mutated[random.nextInt(mutated.length)] = value;
+        }
+        return mutated;
+    }
+}
@@ -0,0 +1,85 @@
+package cn.bs352.jrdiff.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Unsynchronized InputStream view of a channel, buffered through a caller owned (reusable) ByteBuffer
+ *
+ * Unlike Channels.newInputStream no monitor is held around channel reads, so blocking reads do not pin
+ * virtual threads. Reads at least as large as the buffer go straight to the channel, so callers reading in
+ * large chunks only need a small buffer for the occasional header sized read.
+ * Closing the stream does not close the channel.
+ *
+ * @author bo.shen
+ */
+public class ChannelInputStream extends InputStream {
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    public ChannelInputStream(ReadableByteChannel channel, ByteBuffer buffer) {
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+        this.channel = channel;
+        this.buffer = buffer;
+        // Empty, ready to be filled
+        buffer.clear();
+        buffer.flip();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!buffer.hasRemaining() && fill() == -1) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            if (len >= buffer.capacity()) {
+                return readFully(ByteBuffer.wrap(b, off, len));
+            }
+            if (fill() == -1) {
+                return -1;
+            }
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    private int fill() throws IOException {
+        buffer.clear();
+        int read = readFully(buffer);
+        buffer.flip();
+        return read;
+    }
+
+    /**
+     * Reads until at least one byte is available, -1 on end of stream
+     */
+    private int readFully(ByteBuffer dst) throws IOException {
+        int read;
+        do {
+            read = channel.read(dst);
+        }
+        while (read == 0);
+        return read;
+    }
+}
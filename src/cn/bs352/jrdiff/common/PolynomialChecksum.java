@@ -0,0 +1,99 @@
+package cn.bs352.jrdiff.common;
+
+/**
+ * Rolling polynomial (Rabin-Karp) checksum over a 64-bit state, modulo 2^64
+ *
+ * Each byte is first mapped to a random 64-bit value, so low-entropy input (zero-filled regions,
+ * repeated records) still spreads over the whole state. Digest returns the upper 32 bits, which depend on every byte.
+ *
+ * Byte table and multiplier are part of the signature format and must never change, hence final.
+ *
+ * @author bo.shen
+ */
+public final class PolynomialChecksum implements WeakChecksum {
+
+    private static final long MULTIPLIER = 0x100000001B3L; // 64-bit FNV prime, odd
+
+    private static final long[] BYTE_TABLE = new long[256];
+
+    static {
+        // SplitMix64 with a fixed seed
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < BYTE_TABLE.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            BYTE_TABLE[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int blockSize;
+    // MULTIPLIER ^ blockSize, weight of the byte leaving the window
+    private final long outWeight;
+
+    private long hash;
+
+    private final byte[] rollingBuffer;
+    private int rollingPtr = 0;
+
+    public PolynomialChecksum(int blockSize) {
+        this.blockSize = blockSize;
+        this.rollingBuffer = new byte[blockSize];
+
+        long weight = 1;
+        for (int i = 0; i < blockSize; i++) {
+            weight *= MULTIPLIER;
+        }
+        this.outWeight = weight;
+        reset();
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public void update(byte[] bytes) {
+        update(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void update(byte[] bytes, int offset, int len) {
+        long h = hash;
+        for (int i = offset; i < offset + len; i++) {
+            h = h * MULTIPLIER + BYTE_TABLE[bytes[i] & 0xFF];
+        }
+        hash = h;
+
+        if (len == blockSize) {
+            System.arraycopy(bytes, offset, rollingBuffer, 0, len);
+            rollingPtr = 0;
+        }
+    }
+
+    @Override
+    public void roll(byte b) {
+        // Rolls in a byte, replace the byte at "rollingPtr"
+        long old = BYTE_TABLE[rollingBuffer[rollingPtr] & 0xFF];
+        hash = hash * MULTIPLIER - old * outWeight + BYTE_TABLE[b & 0xFF];
+
+        rollingBuffer[rollingPtr] = b;
+        rollingPtr++;
+        if (rollingPtr == rollingBuffer.length) {
+            rollingPtr = 0;
+        }
+    }
+
+    @Override
+    public int digest() {
+        return (int) (hash >>> 32);
+    }
+
+    @Override
+    public void reset() {
+        hash = 0;
+        rollingPtr = 0;
+    }
+}
@@ -2,7 +2,6 @@ package cn.bs352.jrdiff.common;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 
 /**
  * Rolling Checksum based on Adler-32 checksum
@@ -10,7 +9,7 @@ import java.util.Arrays;
  *
  * @author bo.shen
  */
-public class RollingChecksum {
+public class RollingChecksum implements WeakChecksum {
 
     private static final int CHAR_OFFSET = 31;
 
@@ -24,13 +23,21 @@ public class RollingChecksum {
 
     public RollingChecksum(int blockSize) {
         this.blockSize = blockSize;
+        this.rollingBuffer = new byte[blockSize];
         reset();
     }
 
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
     public void update(byte[] bytes) {
         update(bytes, 0, bytes.length);
     }
 
+    @Override
     public void update(byte[] bytes, int offset, int len) {
         for (int i = offset; i < offset + len; i++) {
             int newByte = (256 + bytes[i]) % 256;
@@ -39,7 +46,8 @@ public class RollingChecksum {
         }
 
         if (len == blockSize) {
-            rollingBuffer = Arrays.copyOfRange(bytes, offset, offset + len);
+            // Rolling buffer is allocated once and reused across blocks
+            System.arraycopy(bytes, offset, rollingBuffer, 0, len);
             rollingPtr = 0;
         }
     }
@@ -50,6 +58,7 @@ public class RollingChecksum {
      *
      * @param b
      */
+    @Override
     public void roll(byte b) {
         // Rolls in a byte, replace the byte at "rollingPtr"
         int newByte = (256 + b) % 256;
@@ -67,14 +76,15 @@ public class RollingChecksum {
         }
     }
 
+    @Override
     public int digest() {
         return (s1 & 0xFFFF) + (s2 << 16);
     }
 
+    @Override
     public void reset() {
         s1 = 0;
         s2 = 0;
-        rollingBuffer = null;
         rollingPtr = 0;
     }
 
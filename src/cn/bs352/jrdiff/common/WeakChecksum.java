@@ -0,0 +1,27 @@
+package cn.bs352.jrdiff.common;
+
+/**
+ * Weak checksum that can be rolled one byte at a time over a fixed size block
+ *
+ * @author bo.shen
+ */
+public interface WeakChecksum {
+
+    int getBlockSize();
+
+    void update(byte[] bytes);
+
+    /**
+     * Hashes "len" bytes, a full block (len == block size) must be hashed before rolling
+     */
+    void update(byte[] bytes, int offset, int len);
+
+    /**
+     * Rolls in a byte, the byte at front of the block is removed
+     */
+    void roll(byte b);
+
+    int digest();
+
+    void reset();
+}
@@ -1,5 +1,7 @@
 package cn.bs352.jrdiff.generator;
 
+import java.util.Arrays;
+
 /**
  * A delta block describes a data block in new file, a block contains either
  *
@@ -38,6 +40,9 @@ class RDiffBlock {
         return isData;
     }
 
+    /**
+     * Data array may be longer than the block, only the first "block length" bytes are valid
+     */
     byte[] getData() {
         return data;
     }
@@ -66,13 +71,13 @@ class RDiffBlock {
                 return false;
             }
             else {
+                if (newBlockLength > data.length) {
+                    // Grow geometrically, long runs of data are built from many small blocks
+                    int capacity = (int) Math.min(MAX_DATA_BLOCK_LENGTH, Math.max(newBlockLength, 2L * data.length));
+                    this.data = Arrays.copyOf(data, capacity);
+                }
+                System.arraycopy(newBlock.data, 0, this.data, this.blockLength, newBlock.blockLength);
                 this.blockLength = newBlockLength;
-                byte[] bytes = new byte[blockLength];
-                int length = this.data.length;
-                System.arraycopy(this.data, 0, bytes, 0, length);
-                System.arraycopy(newBlock.data, 0, bytes, length, newBlock.data.length);
-
-                this.data = bytes;
                 return true;
             }
         }
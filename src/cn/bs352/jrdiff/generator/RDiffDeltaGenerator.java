@@ -1,47 +1,118 @@
 package cn.bs352.jrdiff.generator;
 
-import cn.bs352.jrdiff.common.RollingChecksum;
+import cn.bs352.jrdiff.common.ChannelInputStream;
+import cn.bs352.jrdiff.common.ChannelOutputStream;
+import cn.bs352.jrdiff.common.WeakChecksum;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.*;
+import java.util.Arrays;
 
 /**
+ * Creates a delta from a parsed signature and the new version of a file
+ *
+ * Instances hold scratch buffers and digest state, they are not thread-safe but can be reused for any number of deltas.
+ * The signature is read-only and may be shared between generators.
+ *
  * @author bo.shen
  */
 class RDiffDeltaGenerator {
 
     private static final int BUFFER_SIZE = 32768;
 
+    private final MessageDigest strongChecksum;
+    private final byte[] dataBuffer = new byte[BUFFER_SIZE];
+    private final byte[] readBuffer = new byte[BUFFER_SIZE];
+    // Signatures are parsed before the new file is read, so they can go through "readBuffer"
+    private final ByteBuffer signatureBuffer = ByteBuffer.wrap(readBuffer);
+    private final byte[] strongBuffer;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(RDiffDeltaWriter.MAX_HEADER_LENGTH);
+    private final ByteBuffer inBuffer = ByteBuffer.allocate(1024);
+    private final ByteBuffer outBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
     private int blockLength;
-    private int strongHashLength;
 
-    private RollingChecksum rollingChecksum;
-    private SignatureLookupTable lookupTable;
-    private byte[] dataBuffer = new byte[BUFFER_SIZE];
+    private WeakChecksumType checksumType;
+    private WeakChecksum rollingChecksum;
+    private RDiffSignature signature;
     private int nextBufIdx = 0;
 
-    private RDiffBlock deltaBlockToWrite = null;
+    // Last matched block, the block following it in the base file is tried first
+    private RDiffSignature.SigBlock lastHit = null;
+
+    // Hashes of the last constant-byte block, long runs of the same byte are only hashed once
+    private int constantByte = -1;
+    private int constantWeak;
+    private byte[] constantStrong;
+    private RDiffSignature.SigBlock constantHit;
+    // Number of equal bytes at the end of the data buffer
+    private int sameByteRun = 0;
+
+    RDiffDeltaGenerator() throws NoSuchAlgorithmException {
+        strongChecksum = MessageDigest.getInstance("MD5");
+        strongBuffer = new byte[strongChecksum.getDigestLength()];
+    }
 
-    void generate(InputStream sigFile, InputStream newFile, OutputStream delta) throws IOException, NoSuchAlgorithmException, DigestException {
+    void generate(InputStream sigFile, InputStream newFile, OutputStream delta) throws IOException, DigestException {
         // Read Signatures and setup look up table
-        lookupTable = new SignatureLookupTable(readSignatures(sigFile), strongHashLength);
-        rollingChecksum = new RollingChecksum(blockLength);
+        generate(RDiffSignature.read(sigFile), newFile, delta);
+    }
+
+    void generate(RDiffSignature signature, InputStream newFile, OutputStream delta) throws IOException, DigestException {
+        reset(signature);
+        try {
+            createDelta(newFile, new RDiffDeltaWriter(delta, headerBuffer));
+        }
+        finally {
+            // Do not hold on to the signature between runs
+            this.signature = null;
+            lastHit = null;
+            constantHit = null;
+        }
+    }
+
+    /**
+     * Reads a signature through this generator's read buffer, nothing is allocated per call for I/O
+     */
+    RDiffSignature readSignature(ReadableByteChannel sigFile) throws IOException {
+        return RDiffSignature.read(sigFile, signatureBuffer);
+    }
 
-        DataOutputStream out = new DataOutputStream(delta);
-        out.writeInt(RDiffGenerator.DELTA_MAGIC);
+    void generate(RDiffSignature signature, ReadableByteChannel newFile, WritableByteChannel delta) throws IOException, DigestException {
+        ChannelOutputStream out = new ChannelOutputStream(delta, outBuffer);
+        generate(signature, new ChannelInputStream(newFile, inBuffer), out);
+        out.flush();
+    }
 
-        createDelta(newFile, out);
+    private void reset(RDiffSignature signature) {
+        this.signature = signature;
+        blockLength = signature.getBlockLength();
+        if (blockLength > dataBuffer.length) {
+            throw new IllegalArgumentException("Block length too large: " + blockLength);
+        }
+        if (rollingChecksum == null || checksumType != signature.getChecksumType() || rollingChecksum.getBlockSize() != blockLength) {
+            checksumType = signature.getChecksumType();
+            rollingChecksum = checksumType.create(blockLength);
+        }
+        rollingChecksum.reset();
+        strongChecksum.reset();
+        nextBufIdx = 0;
+        lastHit = null;
+        constantByte = -1;
+        constantStrong = null;
+        constantHit = null;
+        sameByteRun = 0;
     }
 
-    void createDelta(InputStream stream, DataOutputStream out) throws IOException, DigestException {
+    void createDelta(InputStream stream, RDiffDeltaWriter out) throws IOException, DigestException {
         int len;
-        byte[] buf = new byte[BUFFER_SIZE];
-
-        while ((len = stream.read(buf)) != -1) {
-            update(buf, 0, len, out);
+        while ((len = stream.read(readBuffer)) != -1) {
+            update(readBuffer, 0, len, out);
         }
 
         // Last bit may be less than "block length" long
@@ -49,27 +120,39 @@ class RDiffDeltaGenerator {
             rollingChecksum.reset();
             rollingChecksum.update(dataBuffer, 0, nextBufIdx);
             int weak = rollingChecksum.digest();
-            SigBlock block = lookupTable.check(weak, dataBuffer, nextBufIdx, nextBufIdx, strongHashLength);
+            RDiffSignature.SigBlock block = signature.check(weak, dataBuffer, nextBufIdx, nextBufIdx, strongChecksum);
             if (block == null) {
-                writeBlock(out, new RDiffBlock(Arrays.copyOfRange(dataBuffer, 0, nextBufIdx)));
+                out.write(new RDiffBlock(Arrays.copyOfRange(dataBuffer, 0, nextBufIdx)));
             }
             else {
-                writeBlock(out, new RDiffBlock(block.getOffset(), nextBufIdx));
+                out.write(new RDiffBlock(block.getOffset(), nextBufIdx));
             }
         }
 
-        if (deltaBlockToWrite != null) {
-            writeBlockNow(out, deltaBlockToWrite);
-        }
+        out.finish();
     }
 
-    void update(byte[] buf, int offset, int len, DataOutputStream out) throws DigestException, IOException {
-        for (int i = offset; i < offset + len; i++) {
+    void update(byte[] buf, int offset, int len, RDiffDeltaWriter out) throws DigestException, IOException {
+        int end = offset + len;
+        for (int i = offset; i < end; i++) {
+            if (nextBufIdx == 0 && end - i >= blockLength) {
+                // At a block boundary with a whole block in the buffer, hash it in place instead of byte by byte
+                i = updateBlock(buf, i, end, out) - 1;
+                continue;
+            }
+
             byte b = buf[i];
+            sameByteRun = nextBufIdx > 0 && dataBuffer[nextBufIdx - 1] == b ? sameByteRun + 1 : 1;
             dataBuffer[nextBufIdx++] = b;
             if (nextBufIdx < blockLength) {
                 continue;
             }
+            else if (nextBufIdx > blockLength && sameByteRun > blockLength) {
+                // Window holds the same bytes as the previous one, which missed. Rolling would not change the
+                // checksum (every byte in the rolling buffer is "b" already), so skip the roll and the lookup
+                packDataBuffer(out);
+                continue;
+            }
             else if (nextBufIdx == blockLength) {
                 // just reached a full block
                 rollingChecksum.reset();
@@ -79,235 +162,153 @@ class RDiffDeltaGenerator {
                 rollingChecksum.roll(b);
             }
 
-            int checksum = rollingChecksum.digest();
-
-            // Do Lookup
-            SigBlock hitBlock = lookupTable.check(checksum, dataBuffer, nextBufIdx, blockLength, strongHashLength);
-            if (hitBlock != null) {
-                // Hit
-                int diffBytes = nextBufIdx - blockLength;
-                if (diffBytes > 0) {
-                    writeBlock(out, new RDiffBlock(Arrays.copyOfRange(dataBuffer, 0, diffBytes)));
-                }
-                writeBlock(out, new RDiffBlock(hitBlock.getOffset(), blockLength));
-                nextBufIdx = 0;
-            }
-            else {
-                if (nextBufIdx == dataBuffer.length) {
-                    // Buffer full, leave the last 2048 bytes intact, pack the bytes before that into a block
-                    int packSize = nextBufIdx - blockLength;
-                    writeBlock(out, new RDiffBlock(Arrays.copyOf(dataBuffer, packSize)));
-                    nextBufIdx -= packSize;
-                    // Move last 2048 bytes to front
-                    System.arraycopy(dataBuffer, dataBuffer.length - blockLength, dataBuffer, 0, blockLength);
-                }
-            }
+            lookup(rollingChecksum.digest(), false, out);
         }
     }
 
-    private void writeBlock(DataOutputStream out, RDiffBlock deltaBlock) throws IOException {
-        if (deltaBlockToWrite != null) {
-            if (!deltaBlockToWrite.tryMerge(deltaBlock)) {
-                writeBlockNow(out, deltaBlockToWrite);
-                deltaBlockToWrite = deltaBlock;
+    /**
+     * Fast path for a whole block starting at "offset", returns the offset to continue from.
+     * <p/>
+     * The block following the last hit is tried first. Constant-byte blocks reuse the hashes of the previous
+     * constant block, and a constant run that is not in the base file is written as data up to the point where
+     * a window could reach past its end. Other blocks continue with the general lookup, reusing the weak checksum.
+     */
+    private int updateBlock(byte[] buf, int offset, int end, RDiffDeltaWriter out) throws DigestException, IOException {
+        if (isConstant(buf, offset, blockLength)) {
+            RDiffSignature.SigBlock hitBlock = checkConstant(buf, offset);
+            if (hitBlock != null) {
+                out.write(new RDiffBlock(hitBlock.getOffset(), blockLength));
+                lastHit = hitBlock;
+                return offset + blockLength;
             }
-        }
-        else {
-            deltaBlockToWrite = deltaBlock;
-        }
-    }
 
-    private void writeBlockNow(DataOutputStream out, RDiffBlock deltaBlock) throws IOException {
-        if (deltaBlock.isData()) {
-            int len = byteCount(deltaBlock.getBlockLength());
-            out.writeByte(RDiffGenerator.FLAG_DATA[len]);
-            writeBlockLength(out, deltaBlock, len);
-            out.write(deltaBlock.getData());
-        }
-        else {
-            int count = byteCount(deltaBlock.getOldOffset());
-            int len = byteCount(deltaBlock.getBlockLength());
-            if (count <= 4) {
-                out.writeByte(RDiffGenerator.FLAG_REF_4[len]);
-                out.writeInt((int) deltaBlock.getOldOffset());
-                writeBlockLength(out, deltaBlock, len);
-            }
-            else {
-                out.writeByte(RDiffGenerator.FLAG_REF_8[len]);
-                out.writeLong(deltaBlock.getOldOffset());
-                writeBlockLength(out, deltaBlock, len);
+            // Every window inside the run has the same checksums and misses, only the ones reaching past it can match
+            int run = blockLength;
+            while (offset + run < end && buf[offset + run] == buf[offset]) {
+                run++;
             }
+            int skip = run - blockLength + 1;
+            // Last hit is kept, the block after it is still the best guess once the run is over
+            out.write(new RDiffBlock(Arrays.copyOfRange(buf, offset, offset + skip)));
+            return offset + skip;
         }
-    }
 
-    private void writeBlockLength(DataOutputStream out, RDiffBlock deltaBlock, int len) throws IOException {
-        switch (len) {
-            case 1:
-                out.writeByte(deltaBlock.getBlockLength());
-                break;
-            case 2:
-                out.writeShort(deltaBlock.getBlockLength());
-                break;
-            case 4:
-                out.writeInt(deltaBlock.getBlockLength());
-                break;
-            default:
-                throw new IllegalStateException("Invalid byte count: " + len);
+        rollingChecksum.reset();
+        rollingChecksum.update(buf, offset, blockLength);
+        int weak = rollingChecksum.digest();
+
+        RDiffSignature.SigBlock hitBlock = checkNext(weak, buf, offset);
+        if (hitBlock != null) {
+            out.write(new RDiffBlock(hitBlock.getOffset(), blockLength));
+            lastHit = hitBlock;
+            return offset + blockLength;
         }
+
+        // Not the next block, continue rolling from this block with its checksum already calculated
+        System.arraycopy(buf, offset, dataBuffer, 0, blockLength);
+        nextBufIdx = blockLength;
+        sameByteRun = 0;
+        lookup(weak, true, out);
+        return offset + blockLength;
     }
 
     /**
-     * Checks if a long integer can be represented by 1,2,4, or 8 bytes
+     * Looks up the block ending at "nextBufIdx" in the data buffer and writes it out on a hit
+     *
+     * @param nextChecked true if the block following the last hit is already ruled out
      */
-    private static int byteCount(long l) {
-        if ((l & ~0xFFL) == 0) {
-            return 1;
-        }
-        else if ((l & ~0xFFFFL) == 0) {
-            return 2;
+    private void lookup(int checksum, boolean nextChecked, RDiffDeltaWriter out) throws DigestException, IOException {
+        // A block right after a hit is most likely the next block in base file
+        RDiffSignature.SigBlock hitBlock = null;
+        if (!nextChecked && nextBufIdx == blockLength) {
+            hitBlock = checkNext(checksum, dataBuffer, 0);
         }
-        else if ((l & ~0xFFFFFFFFL) == 0) {
-            return 4;
+        if (hitBlock == null) {
+            hitBlock = signature.check(checksum, dataBuffer, nextBufIdx, blockLength, strongChecksum);
         }
-        return 8;
-    }
-
-    private List<SigBlock> readSignatures(InputStream sigFile) throws IOException {
-        List<SigBlock> sigBlocks = new LinkedList<SigBlock>();
-        DataInputStream stream = new DataInputStream(sigFile);
-        int magic = stream.readInt();
-
-        if (magic != RDiffGenerator.SIG_MAGIC) {
-            throw new IOException("Invalid signature header.");
-        }
-
-        blockLength = stream.readInt();
-        strongHashLength = stream.readInt();
-        long offset = 0;
-
-        byte[] strongBuffer = new byte[strongHashLength];
-        try {
-            do {
-                int weak = stream.readInt();
-                int read = 0;
-                do {
-                    read += stream.read(strongBuffer, read, strongHashLength - read);
-                }
-                while (read < strongHashLength);
-
-                SigBlock sigBlock = new SigBlock(weak, strongBuffer, offset);
-                sigBlocks.add(sigBlock);
-                offset += blockLength;
+        if (hitBlock != null) {
+            // Hit
+            int diffBytes = nextBufIdx - blockLength;
+            if (diffBytes > 0) {
+                out.write(new RDiffBlock(Arrays.copyOfRange(dataBuffer, 0, diffBytes)));
             }
-            while (true);
+            out.write(new RDiffBlock(hitBlock.getOffset(), blockLength));
+            lastHit = hitBlock;
+            nextBufIdx = 0;
         }
-        catch (EOFException e) {
-            // Do nothing
+        else {
+            packDataBuffer(out);
         }
-        return sigBlocks;
     }
 
-    private static class SigBlock {
-
-        private int weakChecksum;
-        private byte[] strongHash;
-        private long offset;
-
-        public SigBlock(int weakChecksum, byte[] strongHash, long offset) {
-            this.weakChecksum = weakChecksum;
-            this.strongHash = Arrays.copyOf(strongHash, strongHash.length);
-            this.offset = offset;
-        }
-
-        public int getWeakChecksum() {
-            return weakChecksum;
+    private void packDataBuffer(RDiffDeltaWriter out) throws IOException {
+        if (nextBufIdx == dataBuffer.length) {
+            // Buffer full, leave the last 2048 bytes intact, pack the bytes before that into a block
+            int packSize = nextBufIdx - blockLength;
+            out.write(new RDiffBlock(Arrays.copyOf(dataBuffer, packSize)));
+            nextBufIdx -= packSize;
+            // Move last 2048 bytes to front
+            System.arraycopy(dataBuffer, dataBuffer.length - blockLength, dataBuffer, 0, blockLength);
         }
+    }
 
-        public byte[] getStrongHash() {
-            return strongHash;
+    /**
+     * Matches a constant-byte block, hashes are only calculated when the byte value changes
+     */
+    private RDiffSignature.SigBlock checkConstant(byte[] buf, int offset) throws DigestException {
+        int value = buf[offset] & 0xFF;
+        if (value != constantByte) {
+            rollingChecksum.reset();
+            rollingChecksum.update(buf, offset, blockLength);
+            constantWeak = rollingChecksum.digest();
+            constantStrong = Arrays.copyOf(strongHash(buf, offset, blockLength), signature.getStrongHashLength());
+            constantHit = signature.find(constantWeak, constantStrong);
+            constantByte = value;
         }
 
-        public long getOffset() {
-            return offset;
+        // Prefer the next block so a constant region maps onto one contiguous reference
+        RDiffSignature.SigBlock next = lastHit == null ? null : signature.next(lastHit);
+        if (next != null && next.getWeakChecksum() == constantWeak && Arrays.equals(next.getStrongHash(), constantStrong)) {
+            return next;
         }
+        return constantHit;
     }
 
-    private final static class MD5Key {
-        private byte[] md5;
-
-        public MD5Key(byte[] md5, int strongHashLength) {
-            this.md5 = Arrays.copyOf(md5, strongHashLength);
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            MD5Key md5Key = (MD5Key) o;
-
-            if (!Arrays.equals(md5, md5Key.md5)) return false;
-
-            return true;
+    /**
+     * Checks if the block at "offset" is the block following the last hit
+     */
+    private RDiffSignature.SigBlock checkNext(int weak, byte[] buf, int offset) throws DigestException {
+        if (lastHit == null) {
+            return null;
         }
-
-        @Override
-        public int hashCode() {
-            return Arrays.hashCode(md5);
+        RDiffSignature.SigBlock next = signature.next(lastHit);
+        if (next == null || next.getWeakChecksum() != weak) {
+            return null;
         }
-    }
-
-    private static class SignatureLookupTable {
-
-        private Map<Integer, Map<Integer, Map<MD5Key, SigBlock>>> lookupTable;
-        private MessageDigest strongChecksum;
-
-        public SignatureLookupTable(List<SigBlock> blocks, int strongHashLength) throws NoSuchAlgorithmException {
-            lookupTable = new HashMap<Integer, Map<Integer, Map<MD5Key, SigBlock>>>();
-            strongChecksum = MessageDigest.getInstance("md5");
-            for (SigBlock block : blocks) {
-                int weak = block.getWeakChecksum();
-                int firstLevel = weak & 0xFFFF;
-
-                Map<Integer, Map<MD5Key, SigBlock>> secondLevelMap = lookupTable.get(firstLevel);
-                if (secondLevelMap == null) {
-                    secondLevelMap = new HashMap<Integer, Map<MD5Key, SigBlock>>();
-                    lookupTable.put(firstLevel, secondLevelMap);
-                }
-
-                Map<MD5Key, SigBlock> thirdLevel = secondLevelMap.get(weak);
-                if (thirdLevel == null) {
-                    thirdLevel = new HashMap<MD5Key, SigBlock>();
-                    secondLevelMap.put(weak, thirdLevel);
-                }
-
-                // Duplicate Strong Hash are simply replaced
-                thirdLevel.put(new MD5Key(block.getStrongHash(), strongHashLength), block);
+        byte[] strong = strongHash(buf, offset, blockLength);
+        byte[] expected = next.getStrongHash();
+        for (int i = 0; i < expected.length; i++) {
+            if (strong[i] != expected[i]) {
+                return null;
             }
         }
+        return next;
+    }
 
-        public SigBlock check(int weak, byte[] dataBuffer, int nextBufIdx, int blockLength, int strongHashLength) throws DigestException {
-            Map<MD5Key, SigBlock> secondLevel = checkWeak(weak);
-            if (secondLevel != null) {
-                // Weak hit, need to check strong hash
-                strongChecksum.reset();
-                strongChecksum.update(dataBuffer, Math.max(0, nextBufIdx - blockLength), blockLength);
-                MD5Key key = new MD5Key(strongChecksum.digest(), strongHashLength);
-
-                return secondLevel.get(key);
-            }
-            return null;
-        }
+    private byte[] strongHash(byte[] buf, int offset, int len) throws DigestException {
+        strongChecksum.reset();
+        strongChecksum.update(buf, offset, len);
+        strongChecksum.digest(strongBuffer, 0, strongBuffer.length);
+        return strongBuffer;
+    }
 
-        private Map<MD5Key, SigBlock> checkWeak(int weak) {
-            int firstLevel = weak & 0xFFFF;
-            Map<Integer, Map<MD5Key, SigBlock>> secondLevel = lookupTable.get(firstLevel);
-            if (secondLevel != null) {
-                return secondLevel.get(weak);
-            }
-            else {
-                return null;
+    private static boolean isConstant(byte[] buf, int offset, int len) {
+        byte first = buf[offset];
+        for (int i = offset + 1; i < offset + len; i++) {
+            if (buf[i] != first) {
+                return false;
             }
         }
+        return true;
     }
 }
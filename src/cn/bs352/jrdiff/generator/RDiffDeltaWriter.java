@@ -0,0 +1,122 @@
+package cn.bs352.jrdiff.generator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes delta header and blocks, shared by all delta generators
+ *
+ * Block headers are encoded into a caller owned buffer and written with a single call, no DataOutputStream
+ * (whose writes are synchronized) sits between the generator and the output.
+ *
+ * @author bo.shen
+ */
+class RDiffDeltaWriter {
+
+    // Flag, 8 byte offset and 4 byte length
+    static final int MAX_HEADER_LENGTH = 13;
+
+    private final OutputStream out;
+    private final ByteBuffer header;
+
+    private RDiffBlock deltaBlockToWrite = null;
+
+    /**
+     * @param header reusable buffer of at least MAX_HEADER_LENGTH bytes, backed by an array
+     */
+    RDiffDeltaWriter(OutputStream delta, ByteBuffer header) throws IOException {
+        this.out = delta;
+        this.header = header;
+
+        header.clear();
+        header.putInt(RDiffGenerator.DELTA_MAGIC);
+        writeHeader();
+    }
+
+    /**
+     * Queues a block, adjacent blocks are merged before being written
+     */
+    void write(RDiffBlock deltaBlock) throws IOException {
+        if (deltaBlockToWrite != null) {
+            if (!deltaBlockToWrite.tryMerge(deltaBlock)) {
+                writeBlockNow(deltaBlockToWrite);
+                deltaBlockToWrite = deltaBlock;
+            }
+        }
+        else {
+            deltaBlockToWrite = deltaBlock;
+        }
+    }
+
+    /**
+     * Writes out the last queued block
+     */
+    void finish() throws IOException {
+        if (deltaBlockToWrite != null) {
+            writeBlockNow(deltaBlockToWrite);
+            deltaBlockToWrite = null;
+        }
+    }
+
+    private void writeBlockNow(RDiffBlock deltaBlock) throws IOException {
+        header.clear();
+        if (deltaBlock.isData()) {
+            int len = byteCount(deltaBlock.getBlockLength());
+            header.put(RDiffGenerator.FLAG_DATA[len]);
+            putBlockLength(deltaBlock, len);
+            writeHeader();
+            out.write(deltaBlock.getData(), 0, deltaBlock.getBlockLength());
+        }
+        else {
+            int count = byteCount(deltaBlock.getOldOffset());
+            int len = byteCount(deltaBlock.getBlockLength());
+            if (count <= 4) {
+                header.put(RDiffGenerator.FLAG_REF_4[len]);
+                header.putInt((int) deltaBlock.getOldOffset());
+            }
+            else {
+                header.put(RDiffGenerator.FLAG_REF_8[len]);
+                header.putLong(deltaBlock.getOldOffset());
+            }
+            putBlockLength(deltaBlock, len);
+            writeHeader();
+        }
+    }
+
+    private void putBlockLength(RDiffBlock deltaBlock, int len) {
+        switch (len) {
+            case 1:
+                header.put((byte) deltaBlock.getBlockLength());
+                break;
+            case 2:
+                header.putShort((short) deltaBlock.getBlockLength());
+                break;
+            case 4:
+                header.putInt(deltaBlock.getBlockLength());
+                break;
+            default:
+                throw new IllegalStateException("Invalid byte count: " + len);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        out.write(header.array(), header.arrayOffset(), header.position());
+    }
+
+    /**
+     * Checks if a long integer can be represented by 1,2,4, or 8 bytes
+     */
+    private static int byteCount(long l) {
+        if ((l & ~0xFFL) == 0) {
+            return 1;
+        }
+        else if ((l & ~0xFFFFL) == 0) {
+            return 2;
+        }
+        else if ((l & ~0xFFFFFFFFL) == 0) {
+            return 4;
+        }
+        return 8;
+    }
+}
@@ -0,0 +1,411 @@
+package cn.bs352.jrdiff.generator;
+
+import cn.bs352.jrdiff.patcher.RDiffPatcher;
+
+import java.io.*;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe, long lived counterpart of {@link RDiffGenerator} and {@link RDiffPatcher}
+ * <p/>
+ * Parsed signatures are kept in an LRU cache bounded by an approximate memory budget, so deltas against the same
+ * base do not re-parse the signature. Scratch state (buffers, digests, rolling checksums) is pooled and handed
+ * to one request at a time, so concurrent requests do not re-allocate it.
+ * <p/>
+ * No monitors are held around I/O (delta and signature output is encoded without DataOutputStream), channel based
+ * methods are suitable for running on virtual threads.
+ *
+ * @author bo.shen
+ */
+public class RDiffEngine {
+
+    private static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024; // 64MB
+
+    private final long cacheBytes;
+    private final LinkedHashMap<Object, RDiffSignature> signatureCache;
+    // Guards signatureCache and cachedBytes, a Lock rather than synchronized so virtual threads are not pinned
+    private final Lock cacheLock = new ReentrantLock();
+    private long cachedBytes = 0;
+
+    private final Map<WeakChecksumType, Pool<RDiffSignatureGenerator>> signatureGenerators;
+    private final Pool<RDiffDeltaGenerator> deltaGenerators;
+    private final Pool<RDiffLocalDeltaGenerator> localDeltaGenerators;
+    private final Pool<RDiffPatcher> patchers;
+
+    public RDiffEngine() throws NoSuchAlgorithmException {
+        this(DEFAULT_CACHE_BYTES, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param cacheBytes   memory budget for cached signatures, 0 disables caching
+     * @param maxIdleState max number of idle scratch states kept per operation type
+     */
+    public RDiffEngine(long cacheBytes, int maxIdleState) throws NoSuchAlgorithmException {
+        if (cacheBytes < 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + cacheBytes);
+        }
+        if (maxIdleState < 0) {
+            throw new IllegalArgumentException("Invalid pool size: " + maxIdleState);
+        }
+        // Fail early, pooled state is created lazily where the checked exception cannot be thrown
+        MessageDigest.getInstance("MD5");
+
+        this.cacheBytes = cacheBytes;
+        // Access ordered, eldest entry is the least recently used
+        this.signatureCache = new LinkedHashMap<Object, RDiffSignature>(16, 0.75f, true);
+
+        signatureGenerators = new EnumMap<WeakChecksumType, Pool<RDiffSignatureGenerator>>(WeakChecksumType.class);
+        for (final WeakChecksumType checksumType : WeakChecksumType.values()) {
+            signatureGenerators.put(checksumType, new Pool<RDiffSignatureGenerator>(maxIdleState) {
+                @Override
+                RDiffSignatureGenerator create() {
+                    try {
+                        return new RDiffSignatureGenerator(RDiffGenerator.BLOCK_LENGTH, RDiffGenerator.STRONG_HASH_LENGTH, checksumType);
+                    }
+                    catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+        deltaGenerators = new Pool<RDiffDeltaGenerator>(maxIdleState) {
+            @Override
+            RDiffDeltaGenerator create() {
+                try {
+                    return new RDiffDeltaGenerator();
+                }
+                catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        localDeltaGenerators = new Pool<RDiffLocalDeltaGenerator>(maxIdleState) {
+            @Override
+            RDiffLocalDeltaGenerator create() {
+                return new RDiffLocalDeltaGenerator(RDiffGenerator.LOCAL_BLOCK_LENGTH);
+            }
+        };
+        patchers = new Pool<RDiffPatcher>(maxIdleState) {
+            @Override
+            RDiffPatcher create() {
+                return new RDiffPatcher();
+            }
+        };
+    }
+
+    /**
+     * @see RDiffGenerator#generateSignature(InputStream, OutputStream)
+     */
+    public void generateSignature(InputStream in, OutputStream out) throws IOException {
+        generateSignature(in, out, WeakChecksumType.ADLER);
+    }
+
+    /**
+     * @see RDiffGenerator#generateSignature(InputStream, OutputStream, WeakChecksumType)
+     */
+    public void generateSignature(InputStream in, OutputStream out, WeakChecksumType checksumType) throws IOException {
+        Pool<RDiffSignatureGenerator> pool = signatureGenerators.get(checksumType);
+        RDiffSignatureGenerator generator = pool.borrow();
+        try {
+            generator.generate(in, out);
+        }
+        finally {
+            pool.release(generator);
+        }
+    }
+
+    /**
+     * @see RDiffGenerator#generateSignature(ReadableByteChannel, WritableByteChannel)
+     */
+    public void generateSignature(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        generateSignature(in, out, WeakChecksumType.ADLER);
+    }
+
+    /**
+     * @see RDiffGenerator#generateSignature(ReadableByteChannel, WritableByteChannel, WeakChecksumType)
+     */
+    public void generateSignature(ReadableByteChannel in, WritableByteChannel out, WeakChecksumType checksumType) throws IOException {
+        Pool<RDiffSignatureGenerator> pool = signatureGenerators.get(checksumType);
+        RDiffSignatureGenerator generator = pool.borrow();
+        try {
+            generator.generate(in, out);
+        }
+        finally {
+            pool.release(generator);
+        }
+    }
+
+    /**
+     * Generate delta from a signature without caching it
+     *
+     * @see RDiffGenerator#generateDeltaFromSig(InputStream, InputStream, OutputStream)
+     */
+    public void generateDeltaFromSig(InputStream sigFile, InputStream newFile, OutputStream delta) throws IOException, DigestException {
+        generateDelta(RDiffSignature.read(sigFile), newFile, delta);
+    }
+
+    /**
+     * Generate delta using the cached signature stored under "signatureKey".
+     * On a cache miss the signature is parsed from "sigFile" and cached, on a hit "sigFile" is not read at all.
+     *
+     * @param signatureKey Identifies the base file version, must implement equals/hashCode
+     * @param sigFile      Generated signature file
+     * @param newFile      New version of base file
+     * @param delta        Delta Output that can be used to transform base file into new version
+     */
+    public void generateDeltaFromSig(Object signatureKey, InputStream sigFile, InputStream newFile, OutputStream delta) throws IOException, DigestException {
+        RDiffSignature signature = getCachedSignature(signatureKey);
+        if (signature == null) {
+            signature = RDiffSignature.read(sigFile);
+            cacheSignature(signatureKey, signature);
+        }
+        generateDelta(signature, newFile, delta);
+    }
+
+    /**
+     * Channel based delta generation without caching the signature, channels must be in blocking mode
+     */
+    public void generateDeltaFromSig(ReadableByteChannel sigFile, ReadableByteChannel newFile, WritableByteChannel delta) throws IOException, DigestException {
+        RDiffDeltaGenerator generator = deltaGenerators.borrow();
+        try {
+            generator.generate(generator.readSignature(sigFile), newFile, delta);
+        }
+        finally {
+            deltaGenerators.release(generator);
+        }
+    }
+
+    /**
+     * Channel based version of {@link #generateDeltaFromSig(Object, InputStream, InputStream, OutputStream)}
+     */
+    public void generateDeltaFromSig(Object signatureKey, ReadableByteChannel sigFile, ReadableByteChannel newFile, WritableByteChannel delta) throws IOException, DigestException {
+        RDiffDeltaGenerator generator = deltaGenerators.borrow();
+        try {
+            RDiffSignature signature = getCachedSignature(signatureKey);
+            if (signature == null) {
+                // Parsed through the borrowed generator's buffer
+                signature = generator.readSignature(sigFile);
+                cacheSignature(signatureKey, signature);
+            }
+            generator.generate(signature, newFile, delta);
+        }
+        finally {
+            deltaGenerators.release(generator);
+        }
+    }
+
+    /**
+     * @see RDiffGenerator#generateDelta(InputStream, InputStream, OutputStream)
+     */
+    public void generateDelta(InputStream baseFile, InputStream newFile, OutputStream delta) throws IOException, DigestException {
+        generateDelta(baseFile, newFile, delta, WeakChecksumType.ADLER);
+    }
+
+    /**
+     * @see RDiffGenerator#generateDelta(InputStream, InputStream, OutputStream, WeakChecksumType)
+     */
+    public void generateDelta(InputStream baseFile, InputStream newFile, OutputStream delta, WeakChecksumType checksumType) throws IOException, DigestException {
+        ByteArrayOutputStream sig = new ByteArrayOutputStream();
+        generateSignature(baseFile, sig, checksumType);
+
+        generateDeltaFromSig(new ByteArrayInputStream(sig.toByteArray()), newFile, delta);
+    }
+
+    /**
+     * Files over 1MB are memory mapped, mappings are only released when garbage collected.
+     *
+     * @see RDiffGenerator#generateDelta(File, File, OutputStream)
+     */
+    public void generateDelta(File baseFile, File newFile, OutputStream delta) throws IOException, DigestException {
+        RDiffLocalDeltaGenerator generator = localDeltaGenerators.borrow();
+        try {
+            generator.generate(baseFile, newFile, delta);
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Checked in the constructor
+            throw new IllegalStateException(e);
+        }
+        finally {
+            localDeltaGenerators.release(generator);
+        }
+    }
+
+    /**
+     * @see RDiffPatcher#apply(RandomAccessFile, InputStream, OutputStream)
+     */
+    public void apply(RandomAccessFile oldFile, InputStream delta, OutputStream newFile) throws IOException {
+        RDiffPatcher patcher = patchers.borrow();
+        try {
+            patcher.apply(oldFile, delta, newFile);
+        }
+        finally {
+            patchers.release(patcher);
+        }
+    }
+
+    /**
+     * @see RDiffPatcher#apply(FileChannel, ReadableByteChannel, WritableByteChannel)
+     */
+    public void apply(FileChannel oldFile, ReadableByteChannel delta, WritableByteChannel newFile) throws IOException {
+        RDiffPatcher patcher = patchers.borrow();
+        try {
+            patcher.apply(oldFile, delta, newFile);
+        }
+        finally {
+            patchers.release(patcher);
+        }
+    }
+
+    /**
+     * @see RDiffPatcher#apply(AsynchronousFileChannel, ReadableByteChannel, WritableByteChannel)
+     */
+    public void apply(AsynchronousFileChannel oldFile, ReadableByteChannel delta, WritableByteChannel newFile) throws IOException {
+        RDiffPatcher patcher = patchers.borrow();
+        try {
+            patcher.apply(oldFile, delta, newFile);
+        }
+        finally {
+            patchers.release(patcher);
+        }
+    }
+
+    /**
+     * Drops the cached signature, must be called when the base file behind "signatureKey" changes
+     */
+    public void invalidateSignature(Object signatureKey) {
+        cacheLock.lock();
+        try {
+            RDiffSignature removed = signatureCache.remove(signatureKey);
+            if (removed != null) {
+                cachedBytes -= removed.estimatedSize();
+            }
+        }
+        finally {
+            cacheLock.unlock();
+        }
+    }
+
+    public void clearSignatureCache() {
+        cacheLock.lock();
+        try {
+            signatureCache.clear();
+            cachedBytes = 0;
+        }
+        finally {
+            cacheLock.unlock();
+        }
+    }
+
+    /**
+     * Approximate memory held by cached signatures
+     */
+    public long getCachedSignatureBytes() {
+        cacheLock.lock();
+        try {
+            return cachedBytes;
+        }
+        finally {
+            cacheLock.unlock();
+        }
+    }
+
+    private void generateDelta(RDiffSignature signature, InputStream newFile, OutputStream delta) throws IOException, DigestException {
+        RDiffDeltaGenerator generator = deltaGenerators.borrow();
+        try {
+            generator.generate(signature, newFile, delta);
+        }
+        finally {
+            deltaGenerators.release(generator);
+        }
+    }
+
+    private RDiffSignature getCachedSignature(Object signatureKey) {
+        cacheLock.lock();
+        try {
+            return signatureCache.get(signatureKey);
+        }
+        finally {
+            cacheLock.unlock();
+        }
+    }
+
+    private void cacheSignature(Object signatureKey, RDiffSignature signature) {
+        if (cacheBytes == 0) {
+            // Caching disabled
+            return;
+        }
+        long size = signature.estimatedSize();
+        if (size > cacheBytes) {
+            // Would evict everything else and still not fit
+            return;
+        }
+        cacheLock.lock();
+        try {
+            RDiffSignature replaced = signatureCache.put(signatureKey, signature);
+            if (replaced != null) {
+                cachedBytes -= replaced.estimatedSize();
+            }
+            cachedBytes += size;
+
+            // Evict least recently used entries until within budget
+            Iterator<Map.Entry<Object, RDiffSignature>> it = signatureCache.entrySet().iterator();
+            while (cachedBytes > cacheBytes && it.hasNext()) {
+                Map.Entry<Object, RDiffSignature> eldest = it.next();
+                cachedBytes -= eldest.getValue().estimatedSize();
+                it.remove();
+            }
+        }
+        finally {
+            cacheLock.unlock();
+        }
+    }
+
+    /**
+     * Lock free pool of scratch state, creates a new instance when empty and keeps at most "maxIdle" idle instances
+     */
+    private abstract static class Pool<T> {
+
+        private final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final int maxIdle;
+
+        Pool(int maxIdle) {
+            this.maxIdle = maxIdle;
+        }
+
+        abstract T create();
+
+        T borrow() {
+            T state = idle.poll();
+            if (state == null) {
+                return create();
+            }
+            idleCount.decrementAndGet();
+            return state;
+        }
+
+        void release(T state) {
+            if (idleCount.incrementAndGet() <= maxIdle) {
+                idle.offer(state);
+            }
+            else {
+                idleCount.decrementAndGet();
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package cn.bs352.jrdiff.generator;
 
 import java.io.*;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.DigestException;
 import java.security.NoSuchAlgorithmException;
 
@@ -19,8 +21,12 @@ public class RDiffGenerator {
 
     protected static final int BLOCK_LENGTH = 2048;
     protected static final int STRONG_HASH_LENGTH = 8;
+    // Index granularity when both files are local, matches are byte-exact so smaller blocks are affordable
+    protected static final int LOCAL_BLOCK_LENGTH = 512;
 
     protected static final int SIG_MAGIC = 0x72730136;
+    // Same layout as SIG_MAGIC, weak checksums are PolynomialChecksum digests
+    protected static final int SIG_MAGIC_POLYNOMIAL = 0x72730137;
     protected static final int DELTA_MAGIC = 0x72730236;
 
     protected static final byte[] FLAG_DATA = new byte[]{0, 0x41, 0x42, 0, 0x44};
@@ -41,7 +47,38 @@ public class RDiffGenerator {
      * @param out signature output
      */
     public void generateSignature(InputStream in, OutputStream out) throws IOException, NoSuchAlgorithmException {
-        RDiffSignatureGenerator generator = new RDiffSignatureGenerator(BLOCK_LENGTH, STRONG_HASH_LENGTH);
+        generateSignature(in, out, WeakChecksumType.ADLER);
+    }
+
+    /**
+     * Generate Signature using the given weak checksum, the choice is recorded in the signature header
+     * so delta generation picks the same checksum automatically
+     *
+     * @param in           base File to analyse
+     * @param out          signature output
+     * @param checksumType weak checksum used for block matching
+     */
+    public void generateSignature(InputStream in, OutputStream out, WeakChecksumType checksumType) throws IOException, NoSuchAlgorithmException {
+        RDiffSignatureGenerator generator = new RDiffSignatureGenerator(BLOCK_LENGTH, STRONG_HASH_LENGTH, checksumType);
+        generator.generate(in, out);
+    }
+
+    /**
+     * Channel based signature generation, channels must be in blocking mode
+     *
+     * @see #generateSignature(InputStream, OutputStream)
+     */
+    public void generateSignature(ReadableByteChannel in, WritableByteChannel out) throws IOException, NoSuchAlgorithmException {
+        generateSignature(in, out, WeakChecksumType.ADLER);
+    }
+
+    /**
+     * Channel based signature generation, channels must be in blocking mode
+     *
+     * @see #generateSignature(InputStream, OutputStream, WeakChecksumType)
+     */
+    public void generateSignature(ReadableByteChannel in, WritableByteChannel out, WeakChecksumType checksumType) throws IOException, NoSuchAlgorithmException {
+        RDiffSignatureGenerator generator = new RDiffSignatureGenerator(BLOCK_LENGTH, STRONG_HASH_LENGTH, checksumType);
         generator.generate(in, out);
     }
 
@@ -57,6 +94,16 @@ public class RDiffGenerator {
         generator.generate(sigFile, newFile, delta);
     }
 
+    /**
+     * Channel based delta generation, channels must be in blocking mode
+     *
+     * @see #generateDeltaFromSig(InputStream, InputStream, OutputStream)
+     */
+    public void generateDeltaFromSig(ReadableByteChannel sigFile, ReadableByteChannel newFile, WritableByteChannel delta) throws IOException, NoSuchAlgorithmException, DigestException {
+        RDiffDeltaGenerator generator = new RDiffDeltaGenerator();
+        generator.generate(generator.readSignature(sigFile), newFile, delta);
+    }
+
     /**
      * Convenient method of skipping the intermediate step of generating signature.
      * Signatures are stored in memory temporarily, discarded after delta is created.
@@ -66,10 +113,34 @@ public class RDiffGenerator {
      * @param delta    Delta Output that can be used to transform base file into new version
      */
     public void generateDelta(InputStream baseFile, InputStream newFile, OutputStream delta) throws IOException, NoSuchAlgorithmException, DigestException {
+        generateDelta(baseFile, newFile, delta, WeakChecksumType.ADLER);
+    }
+
+    /**
+     * Same as {@link #generateDelta(InputStream, InputStream, OutputStream)} with a choice of weak checksum
+     */
+    public void generateDelta(InputStream baseFile, InputStream newFile, OutputStream delta, WeakChecksumType checksumType) throws IOException, NoSuchAlgorithmException, DigestException {
         ByteArrayOutputStream sig = new ByteArrayOutputStream();
-        generateSignature(baseFile, sig);
+        generateSignature(baseFile, sig, checksumType);
 
         generateDeltaFromSig(new ByteArrayInputStream(sig.toByteArray()), newFile, delta);
     }
 
+    /**
+     * Generate delta when both files are locally available, no signature is involved.
+     * Files are compared directly and matches are extended byte by byte, so the delta is usually smaller than one
+     * created from signatures. Falls back to signatures for files over 2GB.
+     * <p/>
+     * Files over 1MB are memory mapped. Mappings cannot be released explicitly, they are unmapped when garbage
+     * collected, so address space and open mappings (which may also block deleting the files on some platforms)
+     * can outlive this call.
+     *
+     * @param baseFile Base file
+     * @param newFile  New version of Base file
+     * @param delta    Delta Output that can be used to transform base file into new version
+     */
+    public void generateDelta(File baseFile, File newFile, OutputStream delta) throws IOException, NoSuchAlgorithmException, DigestException {
+        RDiffLocalDeltaGenerator generator = new RDiffLocalDeltaGenerator(LOCAL_BLOCK_LENGTH);
+        generator.generate(baseFile, newFile, delta);
+    }
 }
@@ -0,0 +1,326 @@
+package cn.bs352.jrdiff.generator;
+
+import cn.bs352.jrdiff.common.PolynomialChecksum;
+import cn.bs352.jrdiff.common.WeakChecksum;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Creates a delta when both base and new file are local, without going through a signature
+ * <p/>
+ * Small files are read into reusable heap buffers with positional reads, larger ones are memory mapped.
+ * Base file is indexed by the weak checksum of each block, candidates are verified by comparing bytes directly,
+ * so no strong hash is needed. Matches are then extended byte-exactly forwards and backwards, references can start
+ * at any offset and have any length. Output uses the regular delta format.
+ * Files over 2GB cannot be mapped in one piece and go through the signature based path instead.
+ * <p/>
+ * Instances are not thread-safe but can be reused, scratch state up to RETAINED_SCRATCH_BYTES is kept between runs.
+ *
+ * @author bo.shen
+ */
+class RDiffLocalDeltaGenerator {
+
+    // Data blocks are handed to the writer in chunks, the writer merges them up to its own limit
+    private static final int DATA_CHUNK_LENGTH = 1024 * 1024;
+
+    // Max candidates compared per position, bounds the work on highly repetitive base files
+    private static final int MAX_CANDIDATES = 16;
+
+    private static final int NO_BLOCK = -1;
+
+    // Shortest direct (unindexed) match written as a reference. A reference header is 6 to 9 bytes, splitting a data
+    // block only pays off beyond that, replacing a whole data block only has to beat the block's own header.
+    private static final int MIN_PARTIAL_MATCH = 10;
+    private static final int MIN_WHOLE_MATCH = 4;
+
+    // Files up to this size are read into heap buffers instead of being mapped, mappings are only released by GC
+    private static final int HEAP_READ_LENGTH = 1024 * 1024;
+
+    // Scratch arrays and buffers larger than this are dropped after a run instead of being kept for reuse
+    private static final int RETAINED_SCRATCH_BYTES = 1024 * 1024;
+
+    private final int blockLength;
+
+    private ByteBuffer base;
+    private ByteBuffer target;
+    private ByteBuffer baseHeapBuffer;
+    private ByteBuffer targetHeapBuffer;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(RDiffDeltaWriter.MAX_HEADER_LENGTH);
+
+    // Signature based fallback for files too large to map, created on first use
+    private RDiffSignatureGenerator signatureGenerator;
+    private RDiffDeltaGenerator deltaGenerator;
+
+    // Chained hash index over base blocks: head per bucket, next per block
+    private int[] buckets;
+    private int[] chain;
+    private int bucketMask;
+
+    RDiffLocalDeltaGenerator(int blockLength) {
+        this.blockLength = blockLength;
+    }
+
+    void generate(File baseFile, File newFile, OutputStream delta) throws IOException, NoSuchAlgorithmException, DigestException {
+        if (baseFile.length() > Integer.MAX_VALUE || newFile.length() > Integer.MAX_VALUE) {
+            generateFromSignature(baseFile, newFile, delta);
+            return;
+        }
+
+        RandomAccessFile baseRaf = new RandomAccessFile(baseFile, "r");
+        try {
+            RandomAccessFile newRaf = new RandomAccessFile(newFile, "r");
+            try {
+                baseHeapBuffer = ensureCapacity(baseHeapBuffer, baseRaf.getChannel());
+                base = load(baseRaf.getChannel(), baseHeapBuffer);
+                targetHeapBuffer = ensureCapacity(targetHeapBuffer, newRaf.getChannel());
+                target = load(newRaf.getChannel(), targetHeapBuffer);
+
+                buildIndex();
+                createDelta(new RDiffDeltaWriter(delta, headerBuffer));
+            }
+            finally {
+                newRaf.close();
+            }
+        }
+        finally {
+            baseRaf.close();
+            base = null;
+            target = null;
+            dropLargeScratch();
+        }
+    }
+
+    private void generateFromSignature(File baseFile, File newFile, OutputStream delta) throws IOException, NoSuchAlgorithmException, DigestException {
+        if (signatureGenerator == null) {
+            signatureGenerator = new RDiffSignatureGenerator(RDiffGenerator.BLOCK_LENGTH, RDiffGenerator.STRONG_HASH_LENGTH, WeakChecksumType.ADLER);
+            deltaGenerator = new RDiffDeltaGenerator();
+        }
+
+        ByteArrayOutputStream sig = new ByteArrayOutputStream();
+        InputStream base = new FileInputStream(baseFile);
+        try {
+            signatureGenerator.generate(base, sig);
+        }
+        finally {
+            base.close();
+        }
+
+        InputStream in = new FileInputStream(newFile);
+        try {
+            deltaGenerator.generate(new ByteArrayInputStream(sig.toByteArray()), in, delta);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return heap buffer large enough for the file, or the current one if the file is going to be mapped
+     */
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > HEAP_READ_LENGTH || (buffer != null && buffer.capacity() >= size)) {
+            return buffer;
+        }
+        return ByteBuffer.allocate((int) size);
+    }
+
+    /**
+     * Reads small files into "heapBuffer" with positional reads, maps larger ones.
+     * Returned buffer's limit is the file length.
+     */
+    private static ByteBuffer load(FileChannel channel, ByteBuffer heapBuffer) throws IOException {
+        long size = channel.size();
+        if (size > HEAP_READ_LENGTH) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        heapBuffer.clear();
+        heapBuffer.limit((int) size);
+        while (heapBuffer.hasRemaining()) {
+            if (channel.read(heapBuffer, heapBuffer.position()) < 0) {
+                throw new EOFException("File truncated while reading");
+            }
+        }
+        heapBuffer.flip();
+        return heapBuffer;
+    }
+
+    private void dropLargeScratch() {
+        if (buckets != null && buckets.length * 4L > RETAINED_SCRATCH_BYTES) {
+            buckets = null;
+        }
+        if (chain != null && chain.length * 4L > RETAINED_SCRATCH_BYTES) {
+            chain = null;
+        }
+        if (baseHeapBuffer != null && baseHeapBuffer.capacity() > RETAINED_SCRATCH_BYTES) {
+            baseHeapBuffer = null;
+        }
+        if (targetHeapBuffer != null && targetHeapBuffer.capacity() > RETAINED_SCRATCH_BYTES) {
+            targetHeapBuffer = null;
+        }
+    }
+
+    private void buildIndex() {
+        int blocks = base.limit() / blockLength;
+        int bucketCount = Integer.highestOneBit(Math.max(1, blocks) * 2 - 1) << 1;
+        // Reuse index arrays from the previous run when large enough
+        if (buckets == null || buckets.length < bucketCount) {
+            buckets = new int[bucketCount];
+        }
+        Arrays.fill(buckets, 0, bucketCount, NO_BLOCK);
+        if (chain == null || chain.length < blocks) {
+            chain = new int[blocks];
+        }
+        bucketMask = bucketCount - 1;
+
+        WeakChecksum checksum = new PolynomialChecksum(blockLength);
+        byte[] block = new byte[blockLength];
+        // Insert backwards, so chains list the earliest block first
+        for (int i = blocks - 1; i >= 0; i--) {
+            read(base, (long) i * blockLength, block);
+            checksum.reset();
+            checksum.update(block, 0, blockLength);
+            int bucket = bucket(checksum.digest());
+            chain[i] = buckets[bucket];
+            buckets[bucket] = i;
+        }
+    }
+
+    private void createDelta(RDiffDeltaWriter out) throws IOException {
+        int newLength = target.limit();
+        int baseLength = base.limit();
+
+        WeakChecksum checksum = new PolynomialChecksum(blockLength);
+        byte[] block = new byte[blockLength];
+
+        // New file bytes before "pending" are already written to the delta
+        int pending = 0;
+        int pos = 0;
+        boolean rolling = false;
+
+        while (pos + blockLength <= newLength && baseLength >= blockLength) {
+            if (!rolling) {
+                read(target, pos, block);
+                checksum.reset();
+                checksum.update(block, 0, blockLength);
+                rolling = true;
+            }
+
+            // Find the candidate with the longest forward match
+            int bestOffset = NO_BLOCK;
+            int bestLength = 0;
+            int candidates = 0;
+            for (int i = buckets[bucket(checksum.digest())]; i != NO_BLOCK && candidates < MAX_CANDIDATES; i = chain[i]) {
+                candidates++;
+                int offset = i * blockLength;
+                int max = Math.min(baseLength - offset, newLength - pos);
+                if (bestLength > 0 && (max <= bestLength || base.get(offset + bestLength) != target.get(pos + bestLength))) {
+                    // Cannot beat the best match, it would have to match the byte where the best one stopped
+                    continue;
+                }
+                int length = matchForward(offset, pos, max);
+                if (length >= blockLength && length > bestLength) {
+                    bestOffset = offset;
+                    bestLength = length;
+                }
+            }
+
+            if (bestOffset == NO_BLOCK) {
+                if (pos + blockLength < newLength) {
+                    checksum.roll(target.get(pos + blockLength));
+                }
+                pos++;
+                continue;
+            }
+
+            // Extend backwards into bytes not yet written
+            int back = matchBackward(bestOffset, pos, Math.min(bestOffset, pos - pending));
+            writeData(out, pending, pos - back);
+            out.write(new RDiffBlock(bestOffset - back, bestLength + back));
+
+            pos += bestLength;
+            pending = pos;
+            rolling = false;
+        }
+
+        writeTail(out, pending, newLength, baseLength);
+        out.finish();
+    }
+
+    /**
+     * Writes new file bytes from "pending" on, which the index could not match: files shorter than a block, or the
+     * part after the last match. Common prefix (when nothing was matched yet) and common suffix with the base file
+     * are compared directly and written as references when that is smaller than writing them as data.
+     */
+    private void writeTail(RDiffDeltaWriter out, int pending, int newLength, int baseLength) throws IOException {
+        if (pending == 0) {
+            int prefix = matchForward(0, 0, Math.min(baseLength, newLength));
+            if (worthReferencing(prefix, prefix == newLength)) {
+                out.write(new RDiffBlock(0, prefix));
+                pending = prefix;
+            }
+        }
+
+        int suffix = matchBackward(baseLength, newLength, Math.min(baseLength, newLength - pending));
+        if (worthReferencing(suffix, newLength - suffix == pending)) {
+            writeData(out, pending, newLength - suffix);
+            out.write(new RDiffBlock(baseLength - suffix, suffix));
+        }
+        else {
+            writeData(out, pending, newLength);
+        }
+    }
+
+    /**
+     * @param whole true if the match replaces a whole data block, which would need its own header
+     */
+    private static boolean worthReferencing(int length, boolean whole) {
+        return length >= (whole ? MIN_WHOLE_MATCH : MIN_PARTIAL_MATCH);
+    }
+
+    private int matchForward(int baseOffset, int newOffset, int max) {
+        int length = 0;
+        while (length + 8 <= max && base.getLong(baseOffset + length) == target.getLong(newOffset + length)) {
+            length += 8;
+        }
+        while (length < max && base.get(baseOffset + length) == target.get(newOffset + length)) {
+            length++;
+        }
+        return length;
+    }
+
+    private int matchBackward(int baseOffset, int newOffset, int max) {
+        int length = 0;
+        while (length < max && base.get(baseOffset - length - 1) == target.get(newOffset - length - 1)) {
+            length++;
+        }
+        return length;
+    }
+
+    private void writeData(RDiffDeltaWriter out, int from, int to) throws IOException {
+        while (from < to) {
+            byte[] data = new byte[Math.min(to - from, DATA_CHUNK_LENGTH)];
+            read(target, from, data);
+            out.write(new RDiffBlock(data));
+            from += data.length;
+        }
+    }
+
+    private int bucket(int weak) {
+        // Spread the digest, the index is much smaller than the digest range
+        int h = weak * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & bucketMask;
+    }
+
+    private static void read(ByteBuffer buffer, long offset, byte[] dest) {
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) offset);
+        view.get(dest);
+    }
+}
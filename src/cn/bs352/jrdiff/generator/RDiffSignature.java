@@ -0,0 +1,226 @@
+package cn.bs352.jrdiff.generator;
+
+import cn.bs352.jrdiff.common.ChannelInputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Parsed signature of a base file
+ *
+ * Immutable once loaded, a single instance can be shared by any number of delta generators running concurrently.
+ * Strong hashes are calculated by the caller so no digest state is kept here.
+ *
+ * @author bo.shen
+ */
+class RDiffSignature {
+
+    // Rough heap cost of one signature block in the lookup table (block, keys, map entries, index), excluding hash bytes
+    private static final int BLOCK_OVERHEAD_ESTIMATE = 328;
+    // Rough heap cost of the signature itself and its cache entry, so empty signatures are not free
+    private static final int SIGNATURE_OVERHEAD_ESTIMATE = 256;
+
+    private final WeakChecksumType checksumType;
+    private final int blockLength;
+    private final int strongHashLength;
+    private final SigBlock[] blocks;
+    private final Map<Integer, Map<Integer, Map<MD5Key, SigBlock>>> lookupTable;
+
+    private RDiffSignature(WeakChecksumType checksumType, int blockLength, int strongHashLength, List<SigBlock> blocks) {
+        this.checksumType = checksumType;
+        this.blockLength = blockLength;
+        this.strongHashLength = strongHashLength;
+        // Blocks in base file order, for finding the block that follows a match
+        this.blocks = blocks.toArray(new SigBlock[blocks.size()]);
+        this.lookupTable = new HashMap<Integer, Map<Integer, Map<MD5Key, SigBlock>>>();
+
+        for (SigBlock block : blocks) {
+            int weak = block.getWeakChecksum();
+            int firstLevel = weak & 0xFFFF;
+
+            Map<Integer, Map<MD5Key, SigBlock>> secondLevelMap = lookupTable.get(firstLevel);
+            if (secondLevelMap == null) {
+                secondLevelMap = new HashMap<Integer, Map<MD5Key, SigBlock>>();
+                lookupTable.put(firstLevel, secondLevelMap);
+            }
+
+            Map<MD5Key, SigBlock> thirdLevel = secondLevelMap.get(weak);
+            if (thirdLevel == null) {
+                thirdLevel = new HashMap<MD5Key, SigBlock>();
+                secondLevelMap.put(weak, thirdLevel);
+            }
+
+            // Keep the first of duplicate blocks, so runs of equal blocks map from the earliest one and
+            // next() can walk forward through the rest
+            MD5Key key = new MD5Key(block.getStrongHash());
+            if (!thirdLevel.containsKey(key)) {
+                thirdLevel.put(key, block);
+            }
+        }
+    }
+
+    /**
+     * @param buffer caller owned read buffer, signatures are read a few bytes at a time so it should not be tiny
+     */
+    static RDiffSignature read(ReadableByteChannel sigFile, ByteBuffer buffer) throws IOException {
+        return read(new ChannelInputStream(sigFile, buffer));
+    }
+
+    static RDiffSignature read(InputStream sigFile) throws IOException {
+        List<SigBlock> sigBlocks = new ArrayList<SigBlock>();
+        DataInputStream stream = new DataInputStream(sigFile);
+        WeakChecksumType checksumType = WeakChecksumType.fromSigMagic(stream.readInt());
+
+        if (checksumType == null) {
+            throw new IOException("Invalid signature header.");
+        }
+
+        int blockLength = stream.readInt();
+        int strongHashLength = stream.readInt();
+        long offset = 0;
+
+        try {
+            do {
+                int weak = stream.readInt();
+                byte[] strongHash = new byte[strongHashLength];
+                stream.readFully(strongHash);
+
+                sigBlocks.add(new SigBlock(weak, strongHash, offset, sigBlocks.size()));
+                offset += blockLength;
+            }
+            while (true);
+        }
+        catch (EOFException e) {
+            // Do nothing
+        }
+        return new RDiffSignature(checksumType, blockLength, strongHashLength, sigBlocks);
+    }
+
+    WeakChecksumType getChecksumType() {
+        return checksumType;
+    }
+
+    int getBlockLength() {
+        return blockLength;
+    }
+
+    int getStrongHashLength() {
+        return strongHashLength;
+    }
+
+    /**
+     * Approximate heap usage of this signature, used for budgeting signature caches
+     */
+    long estimatedSize() {
+        return SIGNATURE_OVERHEAD_ESTIMATE + (long) blocks.length * (BLOCK_OVERHEAD_ESTIMATE + 2 * strongHashLength);
+    }
+
+    /**
+     * Looks up a block by its weak checksum, the strong hash is only calculated on a weak hit
+     *
+     * @param strongChecksum caller owned digest, it is reset before use
+     */
+    SigBlock check(int weak, byte[] dataBuffer, int nextBufIdx, int blockLength, MessageDigest strongChecksum) {
+        Map<MD5Key, SigBlock> secondLevel = checkWeak(weak);
+        if (secondLevel != null) {
+            // Weak hit, need to check strong hash
+            strongChecksum.reset();
+            strongChecksum.update(dataBuffer, Math.max(0, nextBufIdx - blockLength), blockLength);
+            MD5Key key = new MD5Key(Arrays.copyOf(strongChecksum.digest(), strongHashLength));
+
+            return secondLevel.get(key);
+        }
+        return null;
+    }
+
+    /**
+     * Looks up a block by already calculated checksums
+     *
+     * @param strongHash strong hash truncated to the signature's strong hash length
+     */
+    SigBlock find(int weak, byte[] strongHash) {
+        Map<MD5Key, SigBlock> secondLevel = checkWeak(weak);
+        if (secondLevel != null) {
+            return secondLevel.get(new MD5Key(strongHash));
+        }
+        return null;
+    }
+
+    /**
+     * @return block following "block" in the base file, null if it is the last block
+     */
+    SigBlock next(SigBlock block) {
+        int index = block.getIndex() + 1;
+        return index < blocks.length ? blocks[index] : null;
+    }
+
+    private Map<MD5Key, SigBlock> checkWeak(int weak) {
+        int firstLevel = weak & 0xFFFF;
+        Map<Integer, Map<MD5Key, SigBlock>> secondLevel = lookupTable.get(firstLevel);
+        if (secondLevel != null) {
+            return secondLevel.get(weak);
+        }
+        else {
+            return null;
+        }
+    }
+
+    static class SigBlock {
+
+        private final int weakChecksum;
+        private final byte[] strongHash;
+        private final long offset;
+        private final int index;
+
+        SigBlock(int weakChecksum, byte[] strongHash, long offset, int index) {
+            this.weakChecksum = weakChecksum;
+            this.strongHash = strongHash;
+            this.offset = offset;
+            this.index = index;
+        }
+
+        int getWeakChecksum() {
+            return weakChecksum;
+        }
+
+        byte[] getStrongHash() {
+            return strongHash;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        int getIndex() {
+            return index;
+        }
+    }
+
+    private final static class MD5Key {
+        private final byte[] md5;
+
+        MD5Key(byte[] md5) {
+            this.md5 = md5;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            MD5Key md5Key = (MD5Key) o;
+
+            if (!Arrays.equals(md5, md5Key.md5)) return false;
+
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(md5);
+        }
+    }
+}
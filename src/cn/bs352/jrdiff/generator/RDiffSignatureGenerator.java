@@ -1,12 +1,19 @@
 package cn.bs352.jrdiff.generator;
 
-import cn.bs352.jrdiff.common.RollingChecksum;
+import cn.bs352.jrdiff.common.ChannelInputStream;
+import cn.bs352.jrdiff.common.ChannelOutputStream;
+import cn.bs352.jrdiff.common.WeakChecksum;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 /**
+ * Instances are not thread-safe but can be reused, state is reset at the start of every run
+ *
  * @author bo.shen
  */
 class RDiffSignatureGenerator {
@@ -14,40 +21,57 @@ class RDiffSignatureGenerator {
     private static final int BUFFER_SIZE = 32768;
 
     private final MessageDigest strongChecksum;
-    private final RollingChecksum rollingChecksum;
+    private final WeakChecksum rollingChecksum;
+    private final WeakChecksumType checksumType;
     private final int blockLength;
     private final int strongHashLength;
+    private final byte[] readBuffer = new byte[BUFFER_SIZE];
+    // Header and signature blocks are encoded here and written with a single call
+    private final ByteBuffer encodeBuffer;
+    private final ByteBuffer inBuffer = ByteBuffer.allocate(1024);
+    private final ByteBuffer outBuffer = ByteBuffer.allocate(BUFFER_SIZE);
 
     private int bytesHashed = 0;
 
-    RDiffSignatureGenerator(int blockLength, int strongHashLength) throws NoSuchAlgorithmException {
+    RDiffSignatureGenerator(int blockLength, int strongHashLength, WeakChecksumType checksumType) throws NoSuchAlgorithmException {
         this.blockLength = blockLength;
         this.strongHashLength = strongHashLength;
+        this.checksumType = checksumType;
         strongChecksum = MessageDigest.getInstance("MD5");
-        rollingChecksum = new RollingChecksum(blockLength);
+        rollingChecksum = checksumType.create(blockLength);
+        encodeBuffer = ByteBuffer.allocate(Math.max(12, 4 + strongHashLength));
     }
 
     void generate(InputStream in, OutputStream out) throws IOException {
-        BufferedInputStream stream = new BufferedInputStream(in);
-        DataOutputStream outStream = new DataOutputStream(out);
+        rollingChecksum.reset();
+        strongChecksum.reset();
+        bytesHashed = 0;
 
-        outStream.writeInt(RDiffGenerator.SIG_MAGIC);
-        outStream.writeInt(blockLength);
-        outStream.writeInt(strongHashLength);
+        // Reads are already done in large chunks, no need for a BufferedInputStream
+        encodeBuffer.clear();
+        encodeBuffer.putInt(checksumType.getSigMagic());
+        encodeBuffer.putInt(blockLength);
+        encodeBuffer.putInt(strongHashLength);
+        out.write(encodeBuffer.array(), 0, encodeBuffer.position());
 
         int len;
-        byte[] buf = new byte[BUFFER_SIZE];
-        while ((len = stream.read(buf)) != -1) {
-            update(buf, 0, len, outStream);
+        while ((len = in.read(readBuffer)) != -1) {
+            update(readBuffer, 0, len, out);
         }
 
         // Last bit may be less than "block length" long
         if (bytesHashed > 0) {
-            writeSigBlock(outStream);
+            writeSigBlock(out);
         }
     }
 
-    void update(byte[] buf, int offset, int len, DataOutputStream out) throws IOException {
+    void generate(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        ChannelOutputStream outStream = new ChannelOutputStream(out, outBuffer);
+        generate(new ChannelInputStream(in, inBuffer), outStream);
+        outStream.flush();
+    }
+
+    void update(byte[] buf, int offset, int len, OutputStream out) throws IOException {
         int bytesToProcess = len;
         int bytesOffset = offset;
 
@@ -78,8 +102,10 @@ class RDiffSignatureGenerator {
 
     }
 
-    private void writeSigBlock(DataOutputStream out) throws IOException {
-        out.writeInt(rollingChecksum.digest());
-        out.write(strongChecksum.digest(), 0, strongHashLength);
+    private void writeSigBlock(OutputStream out) throws IOException {
+        encodeBuffer.clear();
+        encodeBuffer.putInt(rollingChecksum.digest());
+        encodeBuffer.put(strongChecksum.digest(), 0, strongHashLength);
+        out.write(encodeBuffer.array(), 0, encodeBuffer.position());
     }
 }
@@ -0,0 +1,57 @@
+package cn.bs352.jrdiff.generator;
+
+import cn.bs352.jrdiff.common.PolynomialChecksum;
+import cn.bs352.jrdiff.common.RollingChecksum;
+import cn.bs352.jrdiff.common.WeakChecksum;
+
+/**
+ * Weak checksum used by a signature, recorded in the signature header through the magic number
+ *
+ * @author bo.shen
+ */
+public enum WeakChecksumType {
+
+    /**
+     * Adler-32 style checksum modulo 2^16, cheap but collides often on low-entropy data
+     */
+    ADLER(RDiffGenerator.SIG_MAGIC) {
+        @Override
+        WeakChecksum create(int blockLength) {
+            return new RollingChecksum(blockLength);
+        }
+    },
+
+    /**
+     * Rolling polynomial over 64-bit state, far fewer weak collisions (and MD5 checks) on sparse or repetitive data
+     */
+    POLYNOMIAL(RDiffGenerator.SIG_MAGIC_POLYNOMIAL) {
+        @Override
+        WeakChecksum create(int blockLength) {
+            return new PolynomialChecksum(blockLength);
+        }
+    };
+
+    private final int sigMagic;
+
+    WeakChecksumType(int sigMagic) {
+        this.sigMagic = sigMagic;
+    }
+
+    int getSigMagic() {
+        return sigMagic;
+    }
+
+    abstract WeakChecksum create(int blockLength);
+
+    /**
+     * @return checksum type for a signature magic number, null if not a signature
+     */
+    static WeakChecksumType fromSigMagic(int magic) {
+        for (WeakChecksumType type : values()) {
+            if (type.sigMagic == magic) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
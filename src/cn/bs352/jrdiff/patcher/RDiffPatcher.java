@@ -1,10 +1,21 @@
 package cn.bs352.jrdiff.patcher;
 
+import cn.bs352.jrdiff.common.ChannelInputStream;
+import cn.bs352.jrdiff.common.ChannelOutputStream;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Patching Tool for transforming base file into newer version using delta file
  *
+ * Not thread-safe, the copy buffer is shared by all calls on an instance. Use one instance per thread, or RDiffEngine.
+ *
  * @author bo.shen
  */
 public class RDiffPatcher {
@@ -12,9 +23,63 @@ public class RDiffPatcher {
     // Use a standalone field
     private static final int DELTA_MAGIC = 0x72730236;
 
-    private byte[] buffer = new byte[1024 * 1024]; // 1MB Buffer
+    // Copy buffer for both block types, kept small as every concurrent patch holds one
+    private final byte[] buffer = new byte[64 * 1024]; // 64KB Buffer
+
+    private final ByteBuffer inBuffer = ByteBuffer.allocate(32768);
+    private final ByteBuffer outBuffer = ByteBuffer.allocate(32768);
+
+    public void apply(final RandomAccessFile oldFile, InputStream delta, OutputStream newFile) throws IOException {
+        apply(new OldFile() {
+            @Override
+            public int read(long offset, byte[] buffer, int len) throws IOException {
+                oldFile.seek(offset);
+                return oldFile.read(buffer, 0, len);
+            }
+        }, delta, newFile);
+    }
+
+    /**
+     * Channel based patching, channels must be in blocking mode.
+     * Old file is read with positional reads, its position is left untouched.
+     */
+    public void apply(final FileChannel oldFile, ReadableByteChannel delta, WritableByteChannel newFile) throws IOException {
+        apply(new OldFile() {
+            @Override
+            public int read(long offset, byte[] buffer, int len) throws IOException {
+                return oldFile.read(ByteBuffer.wrap(buffer, 0, len), offset);
+            }
+        }, delta, newFile);
+    }
+
+    /**
+     * Channel based patching, old file reads wait on the returned Future, which parks rather than pins virtual threads.
+     */
+    public void apply(final AsynchronousFileChannel oldFile, ReadableByteChannel delta, WritableByteChannel newFile) throws IOException {
+        apply(new OldFile() {
+            @Override
+            public int read(long offset, byte[] buffer, int len) throws IOException {
+                try {
+                    return oldFile.read(ByteBuffer.wrap(buffer, 0, len), offset).get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading base file");
+                }
+                catch (ExecutionException e) {
+                    throw new IOException("Failed reading base file", e.getCause());
+                }
+            }
+        }, delta, newFile);
+    }
+
+    private void apply(OldFile oldFile, ReadableByteChannel delta, WritableByteChannel newFile) throws IOException {
+        ChannelOutputStream out = new ChannelOutputStream(newFile, outBuffer);
+        apply(oldFile, new ChannelInputStream(delta, inBuffer), out);
+        out.flush();
+    }
 
-    public void apply(RandomAccessFile oldFile, InputStream delta, OutputStream newFile) throws IOException {
+    private void apply(OldFile oldFile, InputStream delta, OutputStream newFile) throws IOException {
         DataInputStream dIn = new DataInputStream(delta);
 
         if (dIn.readInt() != DELTA_MAGIC) {
@@ -32,7 +97,7 @@ public class RDiffPatcher {
         }
     }
 
-    private void processBlock(DataInputStream delta, RandomAccessFile oldFile, OutputStream newFile) throws IOException {
+    private void processBlock(DataInputStream delta, OldFile oldFile, OutputStream newFile) throws IOException {
         byte type = delta.readByte();
         switch (type) {
             // Data block
@@ -72,15 +137,18 @@ public class RDiffPatcher {
         return i & 0xFFFFFFFFL;
     }
 
-    private void processOffsetBlock(RandomAccessFile oldFile, OutputStream newFile, long offset, int blockLength) throws IOException {
+    private void processOffsetBlock(OldFile oldFile, OutputStream newFile, long offset, int blockLength) throws IOException {
         // offset & block length could be null
-        oldFile.seek(offset);
         int toRead = blockLength;
         while (toRead > 0) {
-            int read = oldFile.read(buffer, 0, Math.min(toRead, buffer.length));
-            if (read > 0) {
+            int read = oldFile.read(offset, buffer, Math.min(toRead, buffer.length));
+            if (read < 0) {
+                throw new IOException("Unexpected end of base file at " + offset);
+            }
+            else if (read > 0) {
                 newFile.write(buffer, 0, read);
                 toRead -= read;
+                offset += read;
             }
         }
     }
@@ -95,4 +163,11 @@ public class RDiffPatcher {
             }
         }
     }
+
+    /**
+     * Random access to the base file
+     */
+    private interface OldFile {
+        int read(long offset, byte[] buffer, int len) throws IOException;
+    }
 }